@@ -0,0 +1,161 @@
+package bguspl.set.ex;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class writes log messages to the game logger from its own thread, so that the game threads never wait for the
+ * console. Messages of levels the logger does not log are dropped before anything is allocated, and the numbers
+ * in a message are kept as ints until the logging thread formats them. When the queue is full, new messages are
+ * dropped and counted instead of blocking the caller.
+ *
+ * @inv dropped() >= 0
+ */
+public class AsyncLogger {
+
+    /**
+     * A message waiting to be logged, with up to two int parameters ({0} and {1} in the message).
+     */
+    private static final class Event {
+
+        final Level level;
+        final String message;
+        final int parameters;
+        final int first;
+        final int second;
+
+        Event(Level level, String message, int parameters, int first, int second) {
+            this.level = level;
+            this.message = message;
+            this.parameters = parameters;
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    /**
+     * The logger the messages are written to.
+     */
+    private final Logger logger;
+
+    /**
+     * The messages waiting to be logged.
+     */
+    private final BlockingQueue<Event> queue;
+
+    /**
+     * The number of messages dropped because the queue was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The thread writing the messages.
+     */
+    private final Thread writer;
+
+    /**
+     * True iff the logger should stop once the queue is empty.
+     */
+    private volatile boolean terminate;
+
+    /**
+     * The class constructor. Starts the logging thread.
+     *
+     * @param logger   - the logger to write the messages to.
+     * @param capacity - the maximal number of messages waiting to be logged.
+     */
+    public AsyncLogger(Logger logger, int capacity) {
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::run, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Logs a message.
+     *
+     * @param level   - the level of the message.
+     * @param message - the message.
+     */
+    public void log(Level level, String message) {
+        if (logger.isLoggable(level))
+            enqueue(new Event(level, message, 0, 0, 0));
+    }
+
+    /**
+     * Logs a message with one parameter.
+     *
+     * @param level   - the level of the message.
+     * @param message - the message, with {0} in place of the parameter.
+     * @param first   - the parameter.
+     */
+    public void log(Level level, String message, int first) {
+        if (logger.isLoggable(level))
+            enqueue(new Event(level, message, 1, first, 0));
+    }
+
+    /**
+     * Logs a message with two parameters.
+     *
+     * @param level   - the level of the message.
+     * @param message - the message, with {0} and {1} in place of the parameters.
+     * @param first   - the first parameter.
+     * @param second  - the second parameter.
+     */
+    public void log(Level level, String message, int first, int second) {
+        if (logger.isLoggable(level))
+            enqueue(new Event(level, message, 2, first, second));
+    }
+
+    /**
+     * @param level - the level to check.
+     * @return - true iff messages of the level are logged, so that callers can skip building them otherwise.
+     */
+    public boolean isLoggable(Level level) {
+        return logger.isLoggable(level);
+    }
+
+    /**
+     * @return - the number of messages dropped because the queue was full.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the logging thread after it writes the messages already queued.
+     */
+    public void terminate() {
+        terminate = true;
+        writer.interrupt();
+    }
+
+    private void enqueue(Event event) {
+        if (!queue.offer(event))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * The main loop of the logging thread.
+     */
+    private void run() {
+        while (!terminate || !queue.isEmpty()) {
+            try {
+                write(queue.take());
+            } catch (InterruptedException ignored) {}
+        }
+    }
+
+    private void write(Event event) {
+        if (event.parameters == 0)
+            logger.log(event.level, event.message);
+        else if (event.parameters == 1)
+            logger.log(event.level, event.message, event.first);
+        else
+            logger.log(event.level, event.message, new Object[]{event.first, event.second});
+    }
+}
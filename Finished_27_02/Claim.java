@@ -0,0 +1,112 @@
+package bguspl.set.ex;
+
+import java.util.Comparator;
+
+/**
+ * This class is an immutable record of a set claimed by a player: the slots of the player's tokens, the card and the
+ * generation of every slot when its token was placed, and the sequence number and time of the claim.
+ * Players hand claims to the dealer, so the dealer never reads the mutable token arrays of a player.
+ *
+ * @inv size() == the number of slots == the number of cards == the number of generations
+ */
+public final class Claim {
+
+    /**
+     * Orders claims by their sequence numbers, i.e. by the order in which they were submitted.
+     */
+    public static final Comparator<Claim> BY_SEQUENCE = Comparator.comparingLong(claim -> claim.sequence);
+
+    /**
+     * The id of the claiming player.
+     */
+    public final int player;
+
+    /**
+     * The global sequence number the claim got when it was submitted; earlier claims have lower numbers.
+     */
+    public final long sequence;
+
+    /**
+     * The time (System.nanoTime) at which the last token of the claim was placed.
+     */
+    public final long nanoTime;
+
+    /**
+     * The slots the player placed tokens on.
+     */
+    private final int[] slots;
+
+    /**
+     * The card in each slot when its token was placed.
+     */
+    private final int[] cards;
+
+    /**
+     * The generation of each slot when its token was placed, see Table.generation.
+     */
+    private final int[] generations;
+
+    /**
+     * The class constructor.
+     *
+     * @param player      - the id of the claiming player.
+     * @param sequence    - the sequence number of the claim.
+     * @param slots       - the slots of the player's tokens, owned by the claim from now on.
+     * @param cards       - the card in each slot when its token was placed, owned by the claim from now on.
+     * @param generations - the generation of each slot when its token was placed, owned by the claim from now on.
+     * @param nanoTime    - the time at which the last token was placed.
+     */
+    public Claim(int player, long sequence, int[] slots, int[] cards, int[] generations, long nanoTime) {
+        this.player = player;
+        this.sequence = sequence;
+        this.slots = slots;
+        this.cards = cards;
+        this.generations = generations;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @return - the number of slots in the claim.
+     */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * @param i - the index of a token in the claim.
+     * @return - the slot of the token.
+     */
+    public int slot(int i) {
+        return slots[i];
+    }
+
+    /**
+     * @param i - the index of a token in the claim.
+     * @return - the card that was in the slot of the token when it was placed.
+     */
+    public int card(int i) {
+        return cards[i];
+    }
+
+    /**
+     * @param i - the index of a token in the claim.
+     * @return - the generation the slot of the token had when it was placed.
+     */
+    public int generation(int i) {
+        return generations[i];
+    }
+
+    /**
+     * @return - a copy of the slots of the claim.
+     */
+    public int[] slots() {
+        return slots.clone();
+    }
+
+    /**
+     * @return - a copy of the cards of the claim.
+     */
+    public int[] cards() {
+        return cards.clone();
+    }
+}
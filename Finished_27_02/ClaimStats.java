@@ -0,0 +1,108 @@
+package bguspl.set.ex;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class keeps the fairness statistics of the claims of every player: how many got a verdict, how long the
+ * dealer took from the last token of a claim to its verdict, and how many claims lost a race to an earlier claim
+ * that took one of their cards.
+ * Only the dealer thread records verdicts; any thread may read the statistics while the game runs.
+ *
+ * @inv lostRaces(player) <= verdicts(player)
+ */
+public class ClaimStats {
+
+    /**
+     * The number of claims of each player that got a verdict.
+     */
+    private final AtomicLongArray verdicts;
+
+    /**
+     * The total time (in nanoseconds) from claim to verdict of each player.
+     */
+    private final AtomicLongArray totalLatency;
+
+    /**
+     * The longest time (in nanoseconds) from claim to verdict of each player.
+     */
+    private final AtomicLongArray maxLatency;
+
+    /**
+     * The number of claims of each player that lost a race.
+     */
+    private final AtomicLongArray lostRaces;
+
+    /**
+     * The class constructor.
+     *
+     * @param players - the number of players.
+     */
+    public ClaimStats(int players) {
+        verdicts = new AtomicLongArray(players);
+        totalLatency = new AtomicLongArray(players);
+        maxLatency = new AtomicLongArray(players);
+        lostRaces = new AtomicLongArray(players);
+    }
+
+    /**
+     * Records the verdict of a claim.
+     *
+     * @param claim    - the claim that got a verdict.
+     * @param now      - the time (System.nanoTime) of the verdict.
+     * @param lostRace - true iff the claim was rejected because an earlier claim took one of its cards.
+     *
+     * @pre - called by the dealer thread only.
+     */
+    public void record(Claim claim, long now, boolean lostRace) {
+        int player = claim.player;
+        long latency = now - claim.nanoTime;
+        verdicts.set(player, verdicts.get(player) + 1);
+        totalLatency.set(player, totalLatency.get(player) + latency);
+        if (latency > maxLatency.get(player))
+            maxLatency.set(player, latency);
+        if (lostRace)
+            lostRaces.set(player, lostRaces.get(player) + 1);
+    }
+
+    /**
+     * @param player - the id of the player.
+     * @return - the number of claims of the player that got a verdict.
+     */
+    public long verdicts(int player) {
+        return verdicts.get(player);
+    }
+
+    /**
+     * @param player - the id of the player.
+     * @return - the mean time (in nanoseconds) from claim to verdict of the player, 0 if none.
+     */
+    public long meanLatency(int player) {
+        long count = verdicts.get(player);
+        return count == 0 ? 0 : totalLatency.get(player) / count;
+    }
+
+    /**
+     * @param player - the id of the player.
+     * @return - the longest time (in nanoseconds) from claim to verdict of the player.
+     */
+    public long maxLatency(int player) {
+        return maxLatency.get(player);
+    }
+
+    /**
+     * @param player - the id of the player.
+     * @return - the number of claims of the player that lost a race.
+     */
+    public long lostRaces(int player) {
+        return lostRaces.get(player);
+    }
+
+    /**
+     * @param player - the id of the player.
+     * @return - a one line summary of the statistics of the player.
+     */
+    public String toString(int player) {
+        return "player " + player + ": " + verdicts(player) + " claims, latency mean " + meanLatency(player) / 1000
+                + " us max " + maxLatency(player) / 1000 + " us, " + lostRaces(player) + " lost races.";
+    }
+}
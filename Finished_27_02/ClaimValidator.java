@@ -0,0 +1,175 @@
+package bguspl.set.ex;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class is the first stage of claim processing: it validates a batch of claims against a snapshot of the table,
+ * splitting large batches between the threads of a fork/join pool. Validation only reads the immutable claims and
+ * the immutable snapshot, so any number of claims can be validated at once; the dealer then commits the verdicts one
+ * by one, in sequence order.
+ */
+public class ClaimValidator {
+
+    /**
+     * The claim is a legal set of the cards in the snapshot.
+     */
+    public static final int LEGAL = 0;
+
+    /**
+     * The claim is made of the cards in the snapshot, but they are not a legal set.
+     */
+    public static final int WRONG = 1;
+
+    /**
+     * A card of the claim was replaced or removed before the snapshot was taken, or the claim has a slot twice.
+     */
+    public static final int STALE = 2;
+
+    /**
+     * Batches with fewer claims than this are validated sequentially; forking costs more than a few set checks.
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    /**
+     * The number of claims a single fork/join task validates without splitting further.
+     */
+    private static final int CLAIMS_PER_TASK = 32;
+
+    /**
+     * The rules the claims are checked by.
+     */
+    private final SetRules rules;
+
+    /**
+     * The packed features of the cards, combined as the claims are read so that validation does not allocate.
+     */
+    private final PackedCards packedCards;
+
+    /**
+     * The pool large batches are validated on.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The class constructor.
+     *
+     * @param rules       - the rules the claims are checked by.
+     * @param packedCards - the packed features of the cards.
+     * @param pool        - the pool to validate large batches on.
+     */
+    public ClaimValidator(SetRules rules, PackedCards packedCards, ForkJoinPool pool) {
+        this.rules = rules;
+        this.packedCards = packedCards;
+        this.pool = pool;
+    }
+
+    /**
+     * Validates a batch of claims against a snapshot of the table.
+     *
+     * @param claims   - the claims to validate.
+     * @param snapshot - the table to validate them against.
+     * @param verdicts - the array the verdicts (LEGAL, WRONG or STALE) are written to, by the order of the claims.
+     *
+     * @pre - verdicts.length >= claims.size()
+     */
+    public void validate(List<Claim> claims, TableSnapshot snapshot, int[] verdicts) {
+        if (claims.size() < PARALLEL_THRESHOLD)
+            validate(claims, snapshot, verdicts, 0, claims.size());
+        else
+            pool.invoke(new ValidateTask(claims, snapshot, verdicts, 0, claims.size()));
+    }
+
+    /**
+     * Validates a single claim against a snapshot of the table.
+     *
+     * @param claim    - the claim to validate.
+     * @param snapshot - the table to validate it against.
+     * @return - LEGAL, WRONG or STALE.
+     */
+    public int validate(Claim claim, TableSnapshot snapshot) {
+        int union = 0, xor = 0;
+        for (int i = 0; i < claim.size(); i++) {
+            int slot = claim.slot(i);
+            int card = claim.card(i);
+            if (slot < 0 || slot >= snapshot.size() || snapshot.generation(slot) != claim.generation(i)
+                    || snapshot.cardAt(slot) != card || card == Table.EMPTY)
+                return STALE;
+            // The token records of the player are out of date, so the claim does not show what it sees
+            for (int j = 0; j < i; j++)
+                if (claim.slot(j) == slot)
+                    return STALE;
+            int packed = packedCards.packed(card);
+            union |= packed;
+            xor ^= packed;
+        }
+        return claim.size() == rules.setSize() && rules.testPacked(union, xor) ? LEGAL : WRONG;
+    }
+
+    private void validate(List<Claim> claims, TableSnapshot snapshot, int[] verdicts, int from, int to) {
+        for (int c = from; c < to; c++)
+            verdicts[c] = validate(claims.get(c), snapshot);
+    }
+
+    /**
+     * Measures the memory the current thread allocates while validating a claim many times, after a warm up so that
+     * the measured calls run compiled. The claim check is expected not to allocate at all.
+     * @param claim    - the claim to validate.
+     * @param snapshot - the table to validate it against.
+     * @param rounds   - the number of validations measured.
+     * @return - the number of bytes allocated by all the measured validations, or -1 if the jvm cannot measure it.
+     */
+    public long allocationTest(Claim claim, TableSnapshot snapshot, int rounds) {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int verdicts = 0;
+        for (int i = 0; i < rounds; i++)
+            verdicts += validate(claim, snapshot);
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < rounds; i++)
+            verdicts += validate(claim, snapshot);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assert verdicts == 2 * rounds * validate(claim, snapshot);
+        return allocated;
+    }
+
+    /**
+     * A fork/join task validating the claims in a range of positions, splitting the range in two until it is small
+     * enough.
+     */
+    private class ValidateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Claim> claims;
+        private final TableSnapshot snapshot;
+        private final int[] verdicts;
+        private final int from;
+        private final int to;
+
+        ValidateTask(List<Claim> claims, TableSnapshot snapshot, int[] verdicts, int from, int to) {
+            this.claims = claims;
+            this.snapshot = snapshot;
+            this.verdicts = verdicts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CLAIMS_PER_TASK) {
+                validate(claims, snapshot, verdicts, from, to);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new ValidateTask(claims, snapshot, verdicts, from, middle),
+                    new ValidateTask(claims, snapshot, verdicts, middle, to));
+        }
+    }
+}
@@ -3,6 +3,11 @@ package bguspl.set.ex;
 import bguspl.set.Env;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 /**
@@ -26,6 +31,11 @@ public class Dealer implements Runnable {
      */
     private final List<Integer> deck;
 
+    /**
+     * The legal sets that can still be collected from the deck and the table.
+     */
+    private final RemainingSets remainingSets;
+
     /**
      * True iff game should be terminated.
      */
@@ -35,22 +45,93 @@ public class Dealer implements Runnable {
      * The time when the dealer needs to reshuffle the deck due to turn timeout.
      */
     private long reshuffleTime = Long.MAX_VALUE;
+
+    /**
+     * The interval (in milliseconds) between countdown updates, and between them once the countdown is in warning.
+     */
+    private static final long TICK_MILLIS = 1000;
+    private static final long WARNING_TICK_MILLIS = 10;
+
+    /**
+     * The dealer thread, parked between deadlines until a player wakes it up.
+     */
+    private volatile Thread dealerThread;
+
+    /**
+     * The number of claims that were not a legal set.
+     */
+    private int wrongClaims;
+
+    /**
+     * The number of claims rejected because a card under one of their tokens changed after the token was placed.
+     */
+    private int staleClaims;
     //private ScheduledExecutorService executor;
 
     //Additions
     private  Thread playerThreads[];
     private boolean canAct=true;
     //private Queue<Player> setQueue;
-    public Vector<Player> playersQueueAfterTokens ;
+
+    /**
+     * The claims submitted by the players and not handled yet, in arrival order. Any number of players add to it
+     * without locking; only the dealer thread takes from it.
+     */
+    private final Queue<Claim> claims = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The sequence number the next claim gets; claims are judged by it, not by their arrival order.
+     */
+    private final AtomicLong claimSequence = new AtomicLong();
+
+    /**
+     * The claims drained from the queue and not judged yet, sorted by sequence number before they are judged.
+     */
+    private final List<Claim> batch = new ArrayList<>();
+
+    /**
+     * The number of claims judged so far, i.e. the sequence number of the next claim to judge.
+     */
+    private long judged;
+
+    /**
+     * The claims with a lower sequence number than this were made before the last reshuffle, and are void.
+     */
+    private long voidBefore;
+
+    /**
+     * The generation every slot had when a committed claim took its card (-1 if none yet).
+     */
+    private final int[] takenGenerations;
+
+    /**
+     * Validates the claims of a batch in parallel, before the dealer commits them.
+     */
+    private final ClaimValidator validator;
+
+    /**
+     * The verdicts of the validator for the claims of the batch, by the same order.
+     */
+    private int[] verdicts = new int[16];
+
+    /**
+     * The claim to verdict latency and the lost races of every player.
+     */
+    public final ClaimStats claimStats;
+
     public Dealer(Env env, Table table, Player[] players) {
         this.env = env;
         this.table = table;
         this.players = players;
         deck = IntStream.range(0, env.config.deckSize).boxed().collect(Collectors.toList());
+        remainingSets = new RemainingSets(env, table.setFinder);
+        claimStats = new ClaimStats(players.length);
+        validator = new ClaimValidator(table.rules, table.packedCards, ForkJoinPool.commonPool());
+        takenGenerations = new int[env.config.tableSize];
+        Arrays.fill(takenGenerations, -1);
         terminate = false;
        // executor =  Executors.newScheduledThreadPool(1);
         playerThreads= new Thread[players.length];
-        playersQueueAfterTokens= new Vector<Player>();
     }
 
     /**
@@ -58,6 +139,7 @@ public class Dealer implements Runnable {
      */
     @Override
     public void run() {
+        dealerThread = Thread.currentThread();
         env.logger.info("thread " + Thread.currentThread().getName() + " starting.");
         //***********************************************
         for(int i = 0 ; i < playerThreads.length ; i++){
@@ -78,6 +160,12 @@ public class Dealer implements Runnable {
             removeAllCardsFromTable();
         }
         announceWinners();
+        env.logger.info("claims rejected: " + wrongClaims + " wrong sets, " + staleClaims + " stale.");
+        for (int i = 0; i < players.length; i++)
+            env.logger.info(claimStats.toString(i));
+        env.logger.info("set cache: " + table.setCache.hits() + " hits, " + table.setCache.misses() + " misses, "
+                + table.setCache.size() + " configurations cached.");
+        env.logger.info("table log: " + table.logger.dropped() + " messages dropped.");
         env.logger.info("thread " + Thread.currentThread().getName() + " terminated.");
     }
 
@@ -104,6 +192,9 @@ public class Dealer implements Runnable {
             players[i].terminate();
         }
         terminate = true;
+        wakeUp();
+        table.animator.shutdown();
+        table.logger.terminate();
      }
 
     public boolean getCanAct(){
@@ -114,80 +205,185 @@ public class Dealer implements Runnable {
      *@return true iff the game should be finished.
      */
     private boolean shouldFinish() {
-        return terminate || env.util.findSets(deck, 1).size() == 0;
+        return terminate || !remainingSets.hasSets();
     }
 
 
-    /** Checks cards should be removed from the table and removes them.**/
-    private void removeCardsFromTable() {
-        if(!playersQueueAfterTokens.isEmpty()) {
-            synchronized (playersQueueAfterTokens) {
-                Iterator<Player> iterator = playersQueueAfterTokens.iterator();
-                while (iterator.hasNext()) {
-                    Player player = iterator.next();
-                    if (player.tokensPlaced == 3) {
-                        int[] cardsToCheck = new int[3];
-                        int[] cardsSlots = new int[3];
-                        for (int i = 0; i < cardsToCheck.length; i++) {
-                            //if (player.getSlotWithTokens(i) > -1)
-                                cardsToCheck[i] = table.slotToCard[player.getSlotWithTokens(i)];
-                            cardsSlots[i] = player.getSlotWithTokens(i);
-                        }
-                        if (env.util.testSet(cardsToCheck)) {
-                            for (int i = 0; i < cardsToCheck.length; i++) {
-                                //int card = (int) (Math.random() * deck.size());
-                                if (player.getSlotWithTokens(i) > -1) {
-                                    table.removeCard(player.getSlotWithTokens(i));
-                                    //table.placeCard(deck.remove(card), player.getSlotWithTokens(i));
-                                }
-                            }
-
-                            player.point();
-                            updateTimerDisplay(true);
-                            for (Player pla_yer: players) {
-                                for(int j = pla_yer.getSlotWithTokens().length -1 ; j >=0 ; j--) {
-                                    if(pla_yer.getSlotWithTokens(j)==cardsSlots[0] || pla_yer.getSlotWithTokens(j)==cardsSlots[1] ||  pla_yer.getSlotWithTokens(j)==cardsSlots[2]){
-                                        table.removeToken(pla_yer.id, pla_yer.getSlotWithTokens(j));
-                                        pla_yer.emptyToken(j);
-                                    }
-                                }
-                            }
-                        } else {
-                            player.penalty();
-                        }
+    /**
+     * Submits a claim to the dealer and wakes it up to check it.
+     *
+     * @param claim - the claim of a player that placed its last token.
+     */
+    public void submit(Claim claim) {
+        claims.offer(claim);
+        wakeUp();
+    }
 
-                    }
+    /**
+     * Numbers a claim right before it is submitted. Every number taken must be submitted, since the claims are
+     * judged in sequence order without gaps.
+     *
+     * @return - the next global claim sequence number.
+     */
+    public long nextClaimSequence() {
+        return claimSequence.getAndIncrement();
+    }
+
+    /**
+     * Checks cards should be removed from the table and removes them.
+     * The claims that arrived since the last pass are processed in two stages: they are all validated at once
+     * against a snapshot of the table, in parallel when there are many, and then committed one by one by sequence
+     * number. So when claims overlap the one numbered first wins, whatever order the players reached the queue in,
+     * and a claim whose slots were changed by an earlier commit is rejected as stale.
+     * A player may be between numbering its claim and queueing it; the claims after such a gap are held back until
+     * the missing claim arrives, so no claim is ever judged after a later one.
+     */
+    private void removeCardsFromTable() {
+        Claim next;
+        while ((next = claims.poll()) != null)
+            batch.add(next);
+        batch.sort(Claim.BY_SEQUENCE);
+        int ready = 0;
+        while (ready < batch.size() && batch.get(ready).sequence == judged + ready)
+            ready++;
+        if (ready == 0)
+            return;
+        List<Claim> window = batch.subList(0, ready);
+        if (verdicts.length < ready)
+            verdicts = new int[Math.max(ready, verdicts.length * 2)];
+        validator.validate(window, table.snapshot(), verdicts);
+
+        for (int c = 0; c < ready; c++) {
+            Claim claim = window.get(c);
+            // Made before the last reshuffle: its tokens were already removed with the cards
+            if (claim.sequence < voidBefore)
+                continue;
+            Player player = players[claim.player];
+            // Only the dealer changes the cards, so a claim is still valid iff none of its slots changed since
+            boolean stale = isStale(claim);
+            int verdict = stale ? ClaimValidator.STALE : verdicts[c];
+            claimStats.record(claim, System.nanoTime(), verdict == ClaimValidator.STALE && lostRace(claim));
+            if (verdict == ClaimValidator.STALE) {
+                // Not the player's fault: drop the outdated tokens that are still theirs and let them go on,
+                // without a penalty. An earlier set may have already taken some of them. A claim that is only
+                // rejected for having a slot twice drops all its tokens.
+                staleClaims++;
+                player.dropTokens(claim, stale);
+            } else if (verdict == ClaimValidator.LEGAL) {
+                for (int i = 0; i < claim.size(); i++) {
+                    takenGenerations[claim.slot(i)] = claim.generation(i);
+                    remainingSets.discard(claim.card(i));
+                    table.removeCard(claim.slot(i));
+                    clearTokens(claim.slot(i), player);
+                }
+                // A set was taken from a grown table, so close the extra slots again
+                int size = table.size();
+                if (table.shrink()) {
+                    for (int slot = size - Table.GROWTH_STEP; slot < size; slot++)
+                        clearTokens(slot, player);
                 }
+
+                player.point();
+                updateTimerDisplay(true);
+            } else {
+                wrongClaims++;
+                player.penalty();
             }
         }
+        judged += ready;
+        window.clear();
+    }
+
+    /**
+     * Checks whether a stale claim lost a race, i.e. an earlier committed claim took one of the cards it saw, rather
+     * than a card being moved by shrink or replaced before the player's token landed.
+     *
+     * @param claim - a stale claim.
+     * @return - true iff a committed claim took one of the claim's cards.
+     */
+    private boolean lostRace(Claim claim) {
+        for (int i = 0; i < claim.size(); i++)
+            if (takenGenerations[claim.slot(i)] == claim.generation(i))
+                return true;
+        return false;
+    }
+
+    /**
+     * Checks that none of the cards of a claim was replaced or removed after the player placed a token on it.
+     * Since the generations are unchanged, the cards recorded in the claim are still the cards on the table.
+     *
+     * @param claim - the claim to check.
+     * @return - true iff the generation of one of the slots changed since its token was placed.
+     */
+    private boolean isStale(Claim claim) {
+        for (int i = 0; i < claim.size(); i++)
+            if (!table.isCurrent(claim.slot(i), claim.generation(i)))
+                return true;
+        return false;
+    }
+
+    /**
+     * Removes every token on a slot and updates only the players that had one there (except the given one).
+     * Called after the card in the slot was changed: a token placed before the change is removed here, and a token
+     * placed after it is taken back by Table.placeToken itself, so no token outlives its card.
+     */
+    private void clearTokens(int slot, Player except) {
+        table.removeTokens(slot, id -> {
+            if (players[id] != except)
+                players[id].tokenRemoved(slot);
+        });
     }
 
     /** Check if any cards can be removed from the deck and placed on the table.**/
     private void placeCardsOnTable() {
         // TODO implement
-        int i = 0;
-        while (i < table.slotToCard.length && !deck.isEmpty()) {
-            if (table.slotToCard[i] == null || (table.slotToCard[i] == -1)) {
-                int card = (int) (Math.random() * deck.size());
-                if (card >= 0 && card < deck.size()) {
-                    int randomCard = deck.remove(card);
-                    table.placeCard(randomCard, i);
-                }
+        int empty = 0;
+        for (int i = 0; i < table.size(); i++) {
+            if (!table.hasCard(i))
+                empty++;
+        }
+        int count = Math.min(empty, deck.size());
+        int[] cards = new int[count];
+        int[] slots = new int[count];
+        for (int i = 0, n = 0; i < table.size() && n < count; i++) {
+            if (!table.hasCard(i)) {
+                cards[n] = deck.remove((int) (Math.random() * deck.size()));
+                slots[n++] = i;
             }
-            i++;
+        }
+        table.placeCards(cards, slots);
+
+        // As in the physical game, when there is no set on the table open more slots and deal into them
+        if (table.isDynamic() && !deck.isEmpty() && !table.hasSet() && table.grow()) {
+            placeCardsOnTable();
+            return;
         }
 
         canAct = true;
     }
 
-    /**Sleep for a fixed amount of time or until the thread is awakened for some purpose.**/
+    /**
+     * Wakes the dealer thread up, e.g. when a player submits a claim. The unpark permit alone may be used up by any
+     * other park of the dealer thread (a lock, the logger queue...), so the dealer also checks the claims queue before
+     * and after every park.
+     */
+    public void wakeUp() {
+        Thread thread = dealerThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**Sleep until the next countdown tick or reshuffle is due, or until the thread is woken up by a claim.**/
     private void sleepUntilWokenOrTimeout() {
         // TODO implement
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+        long remaining = reshuffleTime - System.currentTimeMillis();
+        long tick = remaining <= env.config.turnTimeoutWarningMillis ? WARNING_TICK_MILLIS : remaining % TICK_MILLIS;
+        long timeout = Math.max(0, Math.min(remaining, tick == 0 ? TICK_MILLIS : tick));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        // parkNanos may return early (a spurious wake up or a stale permit), so park again until something is due
+        for (long left = deadline - System.nanoTime(); left > 0 && claims.isEmpty() && !terminate;
+             left = deadline - System.nanoTime())
+            LockSupport.parkNanos(this, left);
     }
 
     /**Reset and/or update the countdown and the countdown display.**/
@@ -211,23 +407,15 @@ public class Dealer implements Runnable {
     private void removeAllCardsFromTable() {
         // TODO implement
         canAct = false;
+        // The claims numbered so far are void, the tokens they were made of are removed with the cards
+        voidBefore = claimSequence.get();
 
         // Remove all cards from the table and add them back to the deck
-        for (int i = 0; i < table.slotToCard.length; i++) {
-            if (table.slotToCard[i] != null && table.slotToCard[i] != -1) {
-                deck.add(table.slotToCard[i]);
-                table.removeCard(i);
-            }
-        }
-
-        for (Player playerush : players) {
-            for (int i = 0 ; i < playerush.getSlotWithTokens().length ; i++) {
-                if(playerush.tokensPlaced > 0 && table.removeToken(playerush.id, playerush.getSlotWithTokens(0))){
-                    playerush.emptyToken(i);
-                }
-            }
-
-        }
+        int size = table.size();
+        for (int card : table.clear())
+            deck.add(card);
+        for (int i = 0; i < size; i++)
+            clearTokens(i, null);
 
         // Shuffle the deck
         //Collections.shuffle(deck);
@@ -279,7 +467,7 @@ public class Dealer implements Runnable {
     public void test()
     {
         placeCardsOnTable();
-        assert table.slotToCard.length == 4 : "error";
+        assert table.size() == 4 : "error";
 
         removeAllCardsFromTable();
         assert table.countCards() == 0 : "second";
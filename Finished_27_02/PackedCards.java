@@ -0,0 +1,84 @@
+package bguspl.set.ex;
+
+import bguspl.set.Env;
+
+/**
+ * This class holds a packed representation of the cards in the deck.
+ * Every card is stored as a single int in which each feature gets a field of featureSize bits, and the value of
+ * the feature is the single bit that is set in its field (one-hot encoding).
+ *
+ * @inv packed.length == env.config.deckSize
+ * @inv Integer.bitCount(packed[card] & fieldMask(i)) == 1 for every card and feature i
+ */
+public class PackedCards {
+
+    /**
+     * The game environment object.
+     */
+    private final Env env;
+
+    /**
+     * Mapping between a card id and its packed features.
+     */
+    private final int[] packed;
+
+    /**
+     * The number of bits each feature takes in a packed card.
+     */
+    private final int fieldWidth;
+
+    /**
+     * A mask of the bits of the first feature field.
+     */
+    private final int fieldMask;
+
+    /**
+     * The class constructor. Decodes every card of the deck once and keeps its packed form.
+     *
+     * @param env - the game environment object.
+     * @throws IllegalArgumentException if the features of a card do not fit in a single int.
+     */
+    public PackedCards(Env env) {
+        this.env = env;
+        fieldWidth = env.config.featureSize;
+        if (fieldWidth * env.config.featureCount > Integer.SIZE)
+            throw new IllegalArgumentException("cannot pack " + env.config.featureCount + " features of size " + fieldWidth + " in an int");
+        fieldMask = (1 << fieldWidth) - 1;
+
+        packed = new int[env.config.deckSize];
+        for (int card = 0; card < packed.length; card++) {
+            int[] features = env.util.cardToFeatures(card);
+            int bits = 0;
+            for (int i = 0; i < features.length; i++)
+                bits |= 1 << (i * fieldWidth + features[i]);
+            packed[card] = bits;
+        }
+    }
+
+    /**
+     * Returns the packed form of a card.
+     *
+     * @param card - the card id.
+     * @return - the features of the card, one one-hot field per feature.
+     */
+    public int packed(int card) {
+        return packed[card];
+    }
+
+    /**
+     * Checks the union (or) of the packed features of some distinct cards: every field must have either a single
+     * bit (all same) or one bit per card (all different).
+     *
+     * @param union - the or of the packed features of the cards.
+     * @param cards - the number of cards in the union.
+     * @return - true iff the cards form a legal set.
+     */
+    public boolean legalUnion(int union, int cards) {
+        for (int i = 0; i < env.config.featureCount; i++) {
+            int values = Integer.bitCount((union >>> (i * fieldWidth)) & fieldMask);
+            if (values != 1 && values != cards)
+                return false;
+        }
+        return true;
+    }
+}
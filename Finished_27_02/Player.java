@@ -55,9 +55,25 @@ public class Player implements Runnable {
 
     ///Additions
     private final BlockingQueue<Integer> actionQueue ;
-    private boolean penaltyActive;
-    public int tokensPlaced = 0;
-    private int[] slotsWithTokens = new int[3];
+    private volatile boolean penaltyActive;
+    private int tokensPlaced = 0;
+    private final int[] slotsWithTokens;
+
+    /**
+     * Guards the token records of the player (slotsWithTokens, tokensPlaced, tokenGenerations and tokenCards): the
+     * player thread and the computer player thread place tokens, and the dealer thread takes them away.
+     */
+    private final Object tokenLock = new Object();
+
+    /**
+     * The generation of every slot when the player placed a token on it, see Table.generation.
+     */
+    private final int[] tokenGenerations;
+
+    /**
+     * The card in every slot when the player placed a token on it, read together with its generation.
+     */
+    private final int[] tokenCards;
 
     public Dealer dealer;
 
@@ -78,9 +94,12 @@ public class Player implements Runnable {
         this.table = table;
         this.id = id;
         this.human = human;
-        this.actionQueue = new ArrayBlockingQueue<>(3);
+        this.actionQueue = new ArrayBlockingQueue<>(table.rules.setSize());
         this.penaltyActive = false;
         this.dealer = dealer;
+        this.slotsWithTokens = new int[table.rules.setSize()];
+        this.tokenGenerations = new int[env.config.tableSize];
+        this.tokenCards = new int[env.config.tableSize];
         for(int i = 0 ; i < slotsWithTokens.length ; i++){
             slotsWithTokens[i] = -1;
         }
@@ -139,7 +158,7 @@ public class Player implements Runnable {
                         }
                     }
                         if(dealer.getCanAct() && !penaltyActive){
-                             keyPressed((int) (Math.random() * 12));
+                             keyPressed((int) (Math.random() * table.size()));
                              Integer newSlot=actionQueue.poll();
                              if(newSlot != null)
                                 doAction((int)newSlot);
@@ -178,18 +197,86 @@ public class Player implements Runnable {
     public int[] getSlotWithTokens(){
         return slotsWithTokens;
     }
+    /**
+     * Builds an immutable claim of the set the player's tokens are on. The sequence number is taken last, right
+     * before the claim is submitted, so nothing can block between numbering the claim and queueing it.
+     *
+     * @return - the claim.
+     *
+     * @pre - the caller holds tokenLock.
+     */
+    private Claim claim(){
+        long nanoTime = System.nanoTime();
+        int[] slots = slotsWithTokens.clone();
+        int[] cards = new int[slots.length];
+        int[] generations = new int[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            generations[i] = tokenGenerations[slots[i]];
+            cards[i] = tokenCards[slots[i]];
+        }
+        return new Claim(id, dealer.nextClaimSequence(), slots, cards, generations, nanoTime);
+    }
+
     public int getSTokensPlaced(){
-        return tokensPlaced;
+        synchronized (tokenLock) {
+            return tokensPlaced;
+        }
     }
 
     public boolean emptyToken(int slot){
-        if(slot >= 0){
-            slotsWithTokens[slot] = -1;
-            arrangeTokens(slotsWithTokens);
-            tokensPlaced--;
-            return true;
+        synchronized (tokenLock) {
+            if(slot >= 0){
+                slotsWithTokens[slot] = -1;
+                arrangeTokens(slotsWithTokens);
+                tokensPlaced--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the token of the player on a slot, after the dealer took it off the table.
+     *
+     * @param slot - the slot the token was on.
+     */
+    public void tokenRemoved(int slot){
+        synchronized (tokenLock) {
+            emptyToken(valToIndex(slot));
+        }
+    }
+
+    /**
+     * Takes back the tokens of a stale claim that are still on the slots the claim saw, so the player can go on.
+     *
+     * @param claim        - a claim of the player that was rejected as stale.
+     * @param outdatedOnly - true to take back only the tokens on slots that changed since, false for all of them.
+     */
+    public void dropTokens(Claim claim, boolean outdatedOnly){
+        synchronized (tokenLock) {
+            for (int i = 0; i < claim.size(); i++) {
+                int slot = claim.slot(i);
+                if ((!outdatedOnly || !table.isCurrent(slot, claim.generation(i)))
+                        && tokenGenerations[slot] == claim.generation(i) && valToIndex(slot) >= 0) {
+                    table.removeToken(id, slot);
+                    emptyToken(valToIndex(slot));
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes all the tokens of the player off the table and forgets them.
+     */
+    private void removeAllTokens(){
+        synchronized (tokenLock) {
+            for(int i = 0 ; i < slotsWithTokens.length ; i++){
+                if (slotsWithTokens[i] >= 0)
+                    table.removeToken(id, slotsWithTokens[i]);
+                slotsWithTokens[i]=-1;
+            }
+            tokensPlaced = 0;
         }
-        return false;
     }
 
     public int valToIndex(int val){
@@ -228,20 +315,28 @@ public class Player implements Runnable {
 
     private void doAction(int slot){
         // TODO implement
-        if(!penaltyActive && !terminate) {
-            if(tokensPlaced < 3) {
-                if (!table.tokenPlaced.get(id).contains(slot)  && ((table.slotToCard[slot] != null) && (table.slotToCard[slot] != -1))) {
-                    table.placeToken(id, slot);
-                    slotsWithTokens[tokensPlaced] = slot;
-                    tokensPlaced++;
-                    if(tokensPlaced == 3){
-                        dealer.playersQueueAfterTokens.add(this);
-                    }
+        synchronized (tokenLock) {
+            if(!penaltyActive && !terminate) {
+                if(tokensPlaced < slotsWithTokens.length) {
+                    TableSnapshot snapshot = table.snapshot();
+                    if (!table.hasToken(id, slot)  && snapshot.cardAt(slot) != Table.EMPTY) {
+                        // Read the card and its generation together, before the token lands; the token is only
+                        // placed, and recorded, if the card was not replaced meanwhile
+                        if (!table.placeToken(id, slot, snapshot.generation(slot)))
+                            return;
+                        tokenGenerations[slot] = snapshot.generation(slot);
+                        tokenCards[slot] = snapshot.cardAt(slot);
+                        slotsWithTokens[tokensPlaced] = slot;
+                        tokensPlaced++;
+                        if(tokensPlaced == slotsWithTokens.length){
+                            dealer.submit(claim());
+                        }
 
-                } else {
-                    if(table.removeToken(id, slot)) {
-                       emptyToken(valToIndex(slot));
-                       //dealer.playersQueueAfterTokens.remove(this);
+                    } else {
+                        if(table.removeToken(id, slot)) {
+                           emptyToken(valToIndex(slot));
+                           //dealer.playersQueueAfterTokens.remove(this);
+                        }
                     }
                 }
             }
@@ -257,11 +352,7 @@ public class Player implements Runnable {
         // TODO implement
         penaltyActive=true;
         score++;
-        for(int i = 0 ; i < slotsWithTokens.length ; i++){
-            table.removeToken(id, slotsWithTokens[i]);
-            tokensPlaced--;
-            slotsWithTokens[i]=-1;
-        }
+        removeAllTokens();
         int ignored = table.countCards(); // this part is just for demonstration in the unit tests
         env.ui.setScore(id, score);
         new Thread(() -> {
@@ -289,11 +380,7 @@ public class Player implements Runnable {
     public void penalty() {
         // TODO implement
       penaltyActive = true;
-      for(int i = 0 ; i < slotsWithTokens.length ; i++){
-          table.removeToken(id, slotsWithTokens[i]);
-          tokensPlaced--;
-          slotsWithTokens[i]=-1;
-      }
+      removeAllTokens();
       new Thread(() -> {
             long currentTime = System.currentTimeMillis();
             long penaltyEndTime = currentTime + env.config.penaltyFreezeMillis;
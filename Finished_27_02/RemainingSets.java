@@ -0,0 +1,140 @@
+package bguspl.set.ex;
+
+import bguspl.set.Env;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class counts the legal sets that can still be collected in the game, i.e. the sets among the cards that are
+ * either in the deck or on the table. Moving cards between the deck and the table does not change it, so it only
+ * has to be updated when a card is discarded.
+ * Sets of three are counted exactly: every pair of cards has a single completing card. For larger sets there is no
+ * such count, so hasSets keeps the last set it found among the live cards and only searches again once a card of
+ * that set is discarded; the search that follows still boxes the live cards and runs a full findSets. A search
+ * that finds nothing is final, since discarding cards cannot make a new set.
+ *
+ * @inv sets == number of legal sets among the cards c such that live[c], if setFinder.pairwise()
+ */
+public class RemainingSets {
+
+    /**
+     * The game environment object.
+     */
+    private final Env env;
+
+    /**
+     * Finds the card completing every pair of cards.
+     */
+    private final SetFinder setFinder;
+
+    /**
+     * True for every card that was not discarded yet.
+     */
+    private final boolean[] live;
+
+    /**
+     * The number of legal sets among the cards that were not discarded yet.
+     */
+    private volatile int sets;
+
+    /**
+     * The last set found among the live cards, if not setFinder.pairwise(); null if there is none or none was searched.
+     */
+    private int[] found;
+
+    /**
+     * True iff a search found no set among the live cards, so none will be found again.
+     */
+    private boolean exhausted;
+
+    /**
+     * The class constructor. All the cards of the deck start as live.
+     *
+     * @param env       - the game environment object.
+     * @param setFinder - the set finder of the table.
+     */
+    public RemainingSets(Env env, SetFinder setFinder) {
+        this.env = env;
+        this.setFinder = setFinder;
+        live = new boolean[env.config.deckSize];
+        for (int card = 0; card < live.length; card++)
+            live[card] = true;
+
+        if (setFinder.pairwise()) {
+            int count = 0;
+            for (int a = 0; a < live.length; a++)
+                for (int b = a + 1; b < live.length; b++)
+                    if (setFinder.third(a, b) > b)
+                        count++;
+            sets = count;
+        }
+    }
+
+    /**
+     * Removes a card from the game, together with every legal set it takes part in.
+     *
+     * @param card - the card that was discarded.
+     */
+    public void discard(int card) {
+        if (!live[card])
+            return;
+        live[card] = false;
+        if (!setFinder.pairwise())
+            return;
+
+        int lost = 0;
+        for (int other = 0; other < live.length; other++) {
+            if (!live[other])
+                continue;
+            int third = setFinder.third(card, other);
+            if (third > other && live[third])
+                lost++;
+        }
+        sets -= lost;
+    }
+
+    /**
+     * Checks if a legal set can still be collected in the game.
+     *
+     * @return - true iff there is a legal set among the cards that were not discarded.
+     *
+     * @pre - called by the thread that discards the cards.
+     */
+    public boolean hasSets() {
+        if (setFinder.pairwise())
+            return sets > 0;
+        if (exhausted)
+            return false;
+        if (found != null && isLive(found))
+            return true;
+
+        List<Integer> cards = new ArrayList<>();
+        for (int card = 0; card < live.length; card++)
+            if (live[card])
+                cards.add(card);
+        List<int[]> search = setFinder.findSets(cards, 1);
+        found = search.isEmpty() ? null : search.get(0);
+        exhausted = found == null;
+        return !exhausted;
+    }
+
+    /**
+     * @return - true iff none of the given cards was discarded.
+     */
+    private boolean isLive(int[] cards) {
+        for (int card : cards)
+            if (!live[card])
+                return false;
+        return true;
+    }
+
+    /**
+     * @return - the number of legal sets among the cards that were not discarded.
+     *
+     * @pre - setFinder.pairwise()
+     */
+    public int count() {
+        return sets;
+    }
+}
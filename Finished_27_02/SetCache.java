@@ -0,0 +1,118 @@
+package bguspl.set.ex;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * This class caches the legal sets found among combinations of cards, keyed by the bitmask of the card ids.
+ * The same combinations come back often (e.g. after the table is reshuffled), so the sets of the least recently
+ * used combinations are evicted once the cache is full.
+ *
+ * @inv sets.size() <= capacity
+ */
+public class SetCache {
+
+    /**
+     * The maximal number of card combinations kept.
+     */
+    private final int capacity;
+
+    /**
+     * Mapping between a combination of cards and the legal sets among them, in access order.
+     */
+    private final LinkedHashMap<Key, List<int[]>> sets;
+
+    /**
+     * The number of lookups that found the combination in the cache.
+     */
+    private long hits;
+
+    /**
+     * The number of lookups that had to compute the sets.
+     */
+    private long misses;
+
+    /**
+     * The class constructor.
+     *
+     * @param capacity - the maximal number of card combinations to keep.
+     */
+    public SetCache(int capacity) {
+        this.capacity = capacity;
+        this.sets = new LinkedHashMap<Key, List<int[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<int[]>> eldest) {
+                return size() > SetCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the legal sets among a combination of cards, computing and caching them if needed.
+     *
+     * @param cards   - the bitmask of the card ids, bit (card % 64) of word (card / 64) for every card.
+     * @param compute - computes the legal sets among the cards on a miss.
+     * @return - an unmodifiable list of the legal sets. The sets themselves must not be modified.
+     */
+    public synchronized List<int[]> get(long[] cards, Supplier<List<int[]>> compute) {
+        Key key = new Key(cards.clone());
+        List<int[]> cached = sets.get(key);
+        if (cached != null) {
+            hits++;
+            return cached;
+        }
+        misses++;
+        cached = Collections.unmodifiableList(compute.get());
+        sets.put(key, cached);
+        return cached;
+    }
+
+    /**
+     * @return - the number of lookups that were answered from the cache.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return - the number of lookups that had to compute the sets.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return - the number of card combinations currently cached.
+     */
+    public synchronized int size() {
+        return sets.size();
+    }
+
+    /**
+     * A combination of cards as a bitmask of their ids.
+     */
+    private static final class Key {
+
+        private final long[] cards;
+        private final int hash;
+
+        Key(long[] cards) {
+            this.cards = cards;
+            this.hash = Arrays.hashCode(cards);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(cards, ((Key) other).cards);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
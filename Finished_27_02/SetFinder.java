@@ -0,0 +1,421 @@
+package bguspl.set.ex;
+
+import bguspl.set.Env;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * This class finds legal sets of three cards.
+ * For any two cards there is exactly one card that completes them to a set, so instead of testing every triple of
+ * cards it is enough to look up the completing card of every pair and check if it is among the given cards.
+ */
+public class SetFinder {
+
+    /**
+     * Decks with at most this many cards get a fully precomputed pair to third card table.
+     */
+    private static final int LOOKUP_LIMIT = 1024;
+
+    /**
+     * Decks with fewer cards than this are searched sequentially even when a parallel search is requested.
+     */
+    private static final int PARALLEL_THRESHOLD = 256;
+
+    /**
+     * The number of first-card positions a single fork/join task searches without splitting further.
+     */
+    private static final int ROWS_PER_TASK = 16;
+
+    /**
+     * The game environment object.
+     */
+    private final Env env;
+
+    /**
+     * The packed features of the cards.
+     */
+    private final PackedCards packedCards;
+
+    /**
+     * Mapping between the rank of a combination of features and the card that has them (-1 if none).
+     */
+    private final int[] rankToCard;
+
+    /**
+     * Mapping between a pair of cards (a * deckSize + b) and the card completing them (null if computed on demand).
+     */
+    private final int[] thirdCard;
+
+    /**
+     * The class constructor.
+     *
+     * @param env         - the game environment object.
+     * @param packedCards - the packed features of the cards.
+     */
+    public SetFinder(Env env, PackedCards packedCards) {
+        this.env = env;
+        this.packedCards = packedCards;
+
+        if (!pairwise()) {
+            rankToCard = null;
+            thirdCard = null;
+            return;
+        }
+
+        int ranks = 1;
+        for (int i = 0; i < env.config.featureCount; i++)
+            ranks *= 3;
+        rankToCard = new int[ranks];
+        Arrays.fill(rankToCard, -1);
+        for (int card = 0; card < env.config.deckSize; card++)
+            rankToCard[rank(packedCards.packed(card))] = card;
+
+        int deckSize = env.config.deckSize;
+        if (deckSize <= LOOKUP_LIMIT) {
+            thirdCard = new int[deckSize * deckSize];
+            for (int a = 0; a < deckSize; a++)
+                for (int b = 0; b < deckSize; b++)
+                    thirdCard[a * deckSize + b] = computeThird(a, b);
+        } else {
+            thirdCard = null;
+        }
+    }
+
+    /**
+     * @return - true iff sets are made of three cards, so that every pair of cards has a single completing card.
+     */
+    public boolean pairwise() {
+        return env.config.featureSize == 3;
+    }
+
+    /**
+     * Returns the card that completes two cards to a legal set.
+     *
+     * @param a - the first card id.
+     * @param b - the second card id.
+     * @return - the completing card id, or -1 if it is not part of the deck.
+     *
+     * @pre - pairwise()
+     */
+    public int third(int a, int b) {
+        if (thirdCard != null)
+            return thirdCard[a * env.config.deckSize + b];
+        return computeThird(a, b);
+    }
+
+    /**
+     * Finds legal sets among the given cards, checking every pair of cards against its completing card.
+     *
+     * @param deck  - the card ids to look for sets in.
+     * @param count - the maximal number of sets to find.
+     * @return - a list of at most count legal sets.
+     */
+    public List<int[]> findSets(List<Integer> deck, int count) {
+        if (!pairwise())
+            return env.util.findSets(deck, count);
+
+        int[] cards = toArray(deck);
+        List<int[]> sets = new ArrayList<>();
+        scan(cards, positions(cards), 0, cards.length, count, sets, new AtomicInteger(cards.length));
+        return sets;
+    }
+
+    /**
+     * Finds legal sets among the given cards using the common fork/join pool.
+     *
+     * @param deck  - the card ids to look for sets in.
+     * @param count - the maximal number of sets to find.
+     * @return - a list of at most count legal sets.
+     *
+     * @see #findSets(List, int, ForkJoinPool)
+     */
+    public List<int[]> findSetsParallel(List<Integer> deck, int count) {
+        return findSets(deck, count, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds legal sets among the given cards, splitting the pairs between the threads of a fork/join pool.
+     * Decks smaller than PARALLEL_THRESHOLD are searched sequentially. The result is the same list, in the same
+     * order, as findSets: once the first positions of the deck are known to hold count sets, only the searches of the
+     * positions after them stop.
+     *
+     * @param deck  - the card ids to look for sets in.
+     * @param count - the maximal number of sets to find.
+     * @param pool  - the pool to run the search on.
+     * @return - a list of at most count legal sets.
+     */
+    public List<int[]> findSets(List<Integer> deck, int count, ForkJoinPool pool) {
+        if (!pairwise() || deck.size() < PARALLEL_THRESHOLD)
+            return findSets(deck, count);
+
+        int[] cards = toArray(deck);
+        AtomicInteger cutoff = new AtomicInteger(cards.length);
+        List<int[]> sets = pool.invoke(new FindSetsTask(cards, positions(cards), 0, cards.length, count, cutoff));
+        return sets.size() > count ? new ArrayList<>(sets.subList(0, count)) : sets;
+    }
+
+    /**
+     * Enumerates the legal sets among the given cards lazily, in the same order as findSets.
+     * The stream only looks for the next set when it is pulled, so short-circuiting operations such as findFirst or
+     * anyMatch stop the search, and a parallel stream splits the search between threads.
+     *
+     * @param deck     - the card ids to look for sets in.
+     * @param parallel - true iff the returned stream should be parallel.
+     * @return - a stream of the legal sets among the cards.
+     */
+    public Stream<int[]> streamSets(List<Integer> deck, boolean parallel) {
+        if (!pairwise())
+            return env.util.findSets(deck, Integer.MAX_VALUE).stream();
+        int[] cards = toArray(deck);
+        return StreamSupport.stream(new SetSpliterator(cards, positions(cards), 0, cards.length), parallel);
+    }
+
+    /**
+     * Passes every legal set among the given cards to a consumer, in the same order as findSets.
+     * Sets of three are passed in a single reused array, so the search does not allocate; larger sets are found by
+     * env.util.findSets, like streamSets does.
+     *
+     * @param cards    - the card ids to look for sets in.
+     * @param consumer - the consumer to call with the cards of every set.
+     * @return - the number of sets found.
+     */
+    public int forEachSet(int[] cards, SetConsumer consumer) {
+        if (!pairwise()) {
+            List<Integer> deck = new ArrayList<>(cards.length);
+            for (int card : cards)
+                deck.add(card);
+            List<int[]> sets = env.util.findSets(deck, Integer.MAX_VALUE);
+            for (int[] set : sets)
+                consumer.accept(set);
+            return sets.size();
+        }
+
+        int[] position = positions(cards);
+        int[] set = new int[3];
+        int sets = 0;
+        for (int i = 0; i < cards.length; i++) {
+            for (int j = i + 1; j < cards.length; j++) {
+                int third = third(cards[i], cards[j]);
+                if (third >= 0 && position[third] > j) {
+                    set[0] = cards[i];
+                    set[1] = cards[j];
+                    set[2] = third;
+                    consumer.accept(set);
+                    sets++;
+                }
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Searches the sets whose first card is at one of the positions [from, to) of the given cards.
+     *
+     * @param cards    - the card ids to look for sets in.
+     * @param position - mapping between a card id and its position in cards (-1 if not there).
+     * @param from     - the first position of the range (inclusive).
+     * @param to       - the last position of the range (exclusive).
+     * @param count    - the maximal number of sets to find.
+     * @param sets     - the list the sets found are added to.
+     * @param cutoff   - the first position no search sharing it needs to scan, since the positions before it are
+     *                   known to hold count sets.
+     */
+    private void scan(int[] cards, int[] position, int from, int to, int count, List<int[]> sets, AtomicInteger cutoff) {
+        for (int i = from; i < to && i < cutoff.get(); i++) {
+            for (int j = i + 1; j < cards.length; j++) {
+                int third = third(cards[i], cards[j]);
+                if (third >= 0 && position[third] > j) {
+                    sets.add(new int[]{cards[i], cards[j], third});
+                    if (sets.size() >= count) {
+                        cutoff.accumulateAndGet(i + 1, Math::min);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Unboxes the cards of a deck.
+     */
+    private static int[] toArray(List<Integer> deck) {
+        int[] cards = new int[deck.size()];
+        for (int i = 0; i < cards.length; i++)
+            cards[i] = deck.get(i);
+        return cards;
+    }
+
+    /**
+     * Maps every card id to its position in the given cards (-1 if it is not there).
+     */
+    private int[] positions(int[] cards) {
+        int[] position = new int[env.config.deckSize];
+        Arrays.fill(position, -1);
+        for (int i = 0; i < cards.length; i++)
+            position[cards[i]] = i;
+        return position;
+    }
+
+    /**
+     * A fork/join task searching the sets whose first card is in a range of positions, splitting the range in two
+     * until it is small enough. A task never stops the search of positions before its own, so the sets of the first
+     * positions are always all found, in order.
+     */
+    private class FindSetsTask extends RecursiveTask<List<int[]>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] cards;
+        private final int[] position;
+        private final int from;
+        private final int to;
+        private final int count;
+        private final AtomicInteger cutoff;
+
+        FindSetsTask(int[] cards, int[] position, int from, int to, int count, AtomicInteger cutoff) {
+            this.cards = cards;
+            this.position = position;
+            this.from = from;
+            this.to = to;
+            this.count = count;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected List<int[]> compute() {
+            List<int[]> sets = new ArrayList<>();
+            if (from >= cutoff.get())
+                return sets;
+            if (to - from <= ROWS_PER_TASK) {
+                scan(cards, position, from, to, count, sets, cutoff);
+                return sets;
+            }
+
+            int middle = (from + to) >>> 1;
+            FindSetsTask right = new FindSetsTask(cards, position, middle, to, count, cutoff);
+            right.fork();
+            sets.addAll(new FindSetsTask(cards, position, from, middle, count, cutoff).compute());
+            // The positions [from, middle) alone hold count sets, so the ones after them are not needed
+            if (sets.size() >= count) {
+                cutoff.accumulateAndGet(middle, Math::min);
+                right.join();
+                return sets;
+            }
+            sets.addAll(right.join());
+            if (sets.size() >= count)
+                cutoff.accumulateAndGet(to, Math::min);
+            return sets;
+        }
+    }
+
+    /**
+     * Computes the card completing two cards: every feature is kept if both cards share it, and is the remaining
+     * value otherwise.
+     */
+    private int computeThird(int a, int b) {
+        int pa = packedCards.packed(a), pb = packedCards.packed(b);
+        int missing = ~(pa | pb);
+        int third = 0;
+        for (int i = 0; i < env.config.featureCount; i++) {
+            int shift = i * 3;
+            int field = (pa >>> shift) & 7;
+            if (field == ((pb >>> shift) & 7))
+                third |= field << shift;
+            else
+                third |= ((missing >>> shift) & 7) << shift;
+        }
+        return rankToCard[rank(third)];
+    }
+
+    /**
+     * Ranks packed features as a base 3 number, so that every combination of features gets its own index.
+     */
+    private int rank(int packed) {
+        int rank = 0;
+        for (int i = env.config.featureCount - 1; i >= 0; i--)
+            rank = rank * 3 + Integer.numberOfTrailingZeros((packed >>> (i * 3)) & 7);
+        return rank;
+    }
+
+    /**
+     * A consumer of the cards of a legal set. The array may be reused once the call returns, so a consumer that keeps
+     * a set must copy it.
+     */
+    @FunctionalInterface
+    public interface SetConsumer {
+        void accept(int[] set);
+    }
+
+    /**
+     * A spliterator over the legal sets whose first card is in a range of positions.
+     * It advances over the pairs (i, j) one at a time, and splits by handing the lower half of the remaining first
+     * positions to a new spliterator.
+     */
+    private class SetSpliterator implements Spliterator<int[]> {
+
+        private final int[] cards;
+        private final int[] position;
+        private int i;
+        private int j;
+        private int end;
+
+        SetSpliterator(int[] cards, int[] position, int from, int to) {
+            this.cards = cards;
+            this.position = position;
+            this.i = from;
+            this.j = from + 1;
+            this.end = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super int[]> action) {
+            while (i < end) {
+                while (j < cards.length) {
+                    int second = j++;
+                    int third = third(cards[i], cards[second]);
+                    if (third >= 0 && position[third] > second) {
+                        action.accept(new int[]{cards[i], cards[second], third});
+                        return true;
+                    }
+                }
+                i++;
+                j = i + 1;
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<int[]> trySplit() {
+            if (end - i < 2)
+                return null;
+            int middle = (i + 1 + end) >>> 1;
+            SetSpliterator prefix = new SetSpliterator(cards, position, i, middle);
+            prefix.j = j;
+            i = middle;
+            j = middle + 1;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            long pairs = 0;
+            for (int first = i; first < end; first++)
+                pairs += cards.length - first - 1;
+            return pairs;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+}
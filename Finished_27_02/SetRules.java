@@ -0,0 +1,90 @@
+package bguspl.set.ex;
+
+import bguspl.set.Env;
+
+/**
+ * This class holds the rules of the game variant: how many cards make a set, and how a set is checked.
+ * A set is made of featureSize cards, and in every feature the cards are either all the same or all different.
+ * The checker is chosen once per configuration, so that checking a claim does not branch on the variant.
+ */
+public class SetRules {
+
+    /**
+     * Unions of packed cards that fit in this many bits are checked with a precomputed table.
+     */
+    private static final int UNION_TABLE_BITS = 16;
+
+    /**
+     * A check of whether setSize distinct cards form a legal set, given the or and the xor of their packed features.
+     */
+    @FunctionalInterface
+    public interface SetChecker {
+        boolean test(int union, int xor);
+    }
+
+    /**
+     * The number of cards in a set.
+     */
+    private final int setSize;
+
+    /**
+     * The checker compiled for this configuration.
+     */
+    private final SetChecker checker;
+
+    /**
+     * The class constructor. Compiles the checker that fits the configuration.
+     *
+     * @param env         - the game environment object.
+     * @param packedCards - the packed features of the cards.
+     */
+    public SetRules(Env env, PackedCards packedCards) {
+        this.setSize = env.config.featureSize;
+
+        int bits = env.config.featureSize * env.config.featureCount;
+        if (setSize == 3) {
+            // every field of three one-hot values has one or three bits set iff their xor equals their or
+            checker = (union, xor) -> union == xor;
+        } else if (bits <= UNION_TABLE_BITS) {
+            boolean[] legalUnion = unionTable(env.config.featureSize, env.config.featureCount);
+            checker = (union, xor) -> legalUnion[union];
+        } else {
+            checker = (union, xor) -> packedCards.legalUnion(union, setSize);
+        }
+    }
+
+    /**
+     * Builds a table telling for every union of packed cards if every feature field in it has either a single value
+     * or all of them.
+     */
+    private static boolean[] unionTable(int fieldWidth, int fields) {
+        int fieldMask = (1 << fieldWidth) - 1;
+        boolean[] legal = new boolean[1 << (fieldWidth * fields)];
+        for (int union = 0; union < legal.length; union++) {
+            legal[union] = true;
+            for (int i = 0; i < fields && legal[union]; i++) {
+                int values = Integer.bitCount((union >>> (i * fieldWidth)) & fieldMask);
+                legal[union] = values == 1 || values == fieldWidth;
+            }
+        }
+        return legal;
+    }
+
+    /**
+     * @return - the number of cards that make a set.
+     */
+    public int setSize() {
+        return setSize;
+    }
+
+    /**
+     * Checks if setSize distinct cards form a legal set, given their packed features combined.
+     *
+     * @param union - the or of the packed features of the cards.
+     * @param xor   - the xor of the packed features of the cards.
+     * @return - true iff the cards form a legal set.
+     */
+    public boolean testPacked(int union, int xor) {
+        return checker.test(union, xor);
+    }
+}
@@ -3,12 +3,30 @@ package bguspl.set.ex;
 import bguspl.set.Env;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 /**
  * This class contains the data that is visible to the player.
  *
  * @inv slotToCard[x] == y iff cardToSlot[y] == x
+ * @inv slotToCard[x] == EMPTY iff there is no card in slot x, cardToSlot[y] == EMPTY iff card y is not on the table
+ *
+ * Concurrency model: only the dealer thread places and removes cards, and it does so under the write lock of a
+ * StampedLock, so the two maps, the card bitmask and the set index always change together. Players, AI threads and
+ * hints read the card state with an optimistic read that is validated afterwards, and retry under the read lock only
+ * if a write overlapped, so readers never block each other and never see half a move. Tokens live in their own
+ * atomic bitmasks and need no lock.
+ * Every slot also has a generation that changes whenever its card is placed or removed, so a claim made of slots and
+ * their generations can be checked for staleness without reading the cards.
+ * stressTest checks the first invariant under load.
  */
 public class Table {
 
@@ -18,59 +36,262 @@ public class Table {
     private final Env env;
 
     /**
-     * Mapping between a slot and the card placed in it (null if none).
+     * The value of an empty slot in slotToCard, and of a card that is not on the table in cardToSlot.
      */
-    protected final Integer[] slotToCard; // card per slot (if any)
+    public static final int EMPTY = -1;
 
     /**
-     * Mapping between a card and the slot it is in (null if none).
+     * Mapping between a slot and the card placed in it (EMPTY if none).
      */
-    protected final Integer[] cardToSlot; // slot per card (if any)
+    protected final int[] slotToCard; // card per slot (if any)
+
+    /**
+     * Mapping between a card and the slot it is in (EMPTY if none).
+     */
+    protected final int[] cardToSlot; // slot per card (if any)
 
     //Added
     // protected final Integer[] tokenInSlot;
 
-    protected HashMap <Integer,Vector<Integer>> tokenPlaced= new HashMap<Integer,Vector<Integer>>();
     /**
-     * Constructor for testing.
+     * The slots each player has tokens on: bit (slot % 64) of word (player * slotWords + slot / 64).
+     */
+    private final AtomicLongArray playerTokens;
+
+    /**
+     * The players that have a token on each slot: bit (player % 64) of word (slot * playerWords + player / 64).
+     */
+    private final AtomicLongArray slotTokens;
+
+    /**
+     * The number of words per player in playerTokens.
+     */
+    private final int slotWords;
+
+    /**
+     * The number of words per slot in slotTokens.
+     */
+    private final int playerWords;
+
+    /**
+     * The generation of every slot, bumped each time a card is placed in it or removed from it.
+     */
+    private final AtomicIntegerArray generations;
+
+    /**
+     * The packed features of every card in the deck, used to test sets without decoding cards.
+     */
+    protected final PackedCards packedCards;
+
+    /**
+     * Finds the legal sets among cards using the packed features.
+     */
+    protected final SetFinder setFinder;
+
+    /**
+     * The rules of the game variant: the size of a set and how it is checked.
+     */
+    protected final SetRules rules;
+
+    /**
+     * The number of legal sets among the cards currently on the table.
+     */
+    private volatile int setsOnTable;
+
+    /**
+     * The number of legal sets on the table that the card in each slot is part of.
+     */
+    private final int[] setsPerSlot;
+
+    /**
+     * The maximal number of table configurations whose sets are cached.
+     */
+    private static final int SET_CACHE_CAPACITY = 1024;
+
+    /**
+     * The legal sets of table configurations seen before, keyed by cardMask.
+     */
+    protected final SetCache setCache = new SetCache(SET_CACHE_CAPACITY);
+
+    /**
+     * The bitmask of the cards on the table: bit (card % 64) of word (card / 64) is set iff the card is on the table.
+     */
+    private final long[] cardMask;
+
+    /**
+     * Guards the card state (slotToCard, cardToSlot, cardMask and the set index): the dealer writes under the write
+     * lock, readers use optimistic reads.
+     */
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Reveals the card moves on the ui one table delay apart, without delaying the dealer.
+     */
+    protected final TableAnimator animator;
+
+    /**
+     * The number of table changes kept in the journal.
+     */
+    private static final int JOURNAL_CAPACITY = 4096;
+
+    /**
+     * The sequenced record of every card and token move on the table.
+     */
+    protected final TableJournal journal = new TableJournal(JOURNAL_CAPACITY);
+
+    /**
+     * The latest immutable view of the cards, replaced after every change the dealer makes.
+     */
+    private volatile TableSnapshot snapshot;
+
+    /**
+     * The maximal number of log messages waiting to be written.
+     */
+    private static final int LOG_CAPACITY = 1024;
+
+    /**
+     * Writes the table's log messages to env.logger off the game threads.
+     */
+    protected final AsyncLogger logger;
+
+    /**
+     * The number of slots added to the table when it grows.
+     */
+    public static final int GROWTH_STEP = 3;
+
+    /**
+     * The system property that turns the dynamic size on for tables made with Table(env).
+     */
+    public static final String DYNAMIC_SIZE_PROPERTY = "bguspl.set.dynamicTable";
+
+    /**
+     * The smallest base table a dynamic table may have, the number of cards of a standard table.
+     */
+    public static final int MIN_BASE_SIZE = 12;
+
+    /**
+     * True iff the table starts GROWTH_STEP slots smaller than the grid and grows into them when it has no set.
+     * Turn it on with a grid of GROWTH_STEP more slots than the base table (e.g. 3 rows of 5 for 12 + 3 cards).
+     */
+    private final boolean dynamicSize;
+
+    /**
+     * The number of slots in use when the table did not grow.
+     */
+    private final int baseSize;
+
+    /**
+     * The number of slots currently in use, between baseSize and the size of the grid.
+     */
+    private volatile int size;
+
+    /**
+     * Constructor for testing. The dynamic size is off.
      *
      * @param env        - the game environment objects.
-     * @param slotToCard - mapping between a slot and the card placed in it (null if none).
-     * @param cardToSlot - mapping between a card and the slot it is in (null if none).
+     * @param slotToCard - mapping between a slot and the card placed in it (EMPTY if none).
+     * @param cardToSlot - mapping between a card and the slot it is in (EMPTY if none).
      */
 
-    public Table(Env env, Integer[] slotToCard, Integer[] cardToSlot) {
+    public Table(Env env, int[] slotToCard, int[] cardToSlot) {
 
+        this(env, slotToCard, cardToSlot, false);
+    }
+
+    /**
+     * Constructor for testing, with the dynamic size turned on or off.
+     *
+     * @param env         - the game environment objects.
+     * @param slotToCard  - mapping between a slot and the card placed in it (EMPTY if none).
+     * @param cardToSlot  - mapping between a card and the slot it is in (EMPTY if none).
+     * @param dynamicSize - true iff the table should start GROWTH_STEP slots smaller than the grid and grow into them.
+     * @throws IllegalArgumentException if dynamicSize is on and the grid has fewer than MIN_BASE_SIZE + GROWTH_STEP
+     *                                  slots.
+     */
+    public Table(Env env, int[] slotToCard, int[] cardToSlot, boolean dynamicSize) {
+
+        if (dynamicSize && slotToCard.length < MIN_BASE_SIZE + GROWTH_STEP)
+            throw new IllegalArgumentException("a dynamic table needs a grid of at least "
+                    + (MIN_BASE_SIZE + GROWTH_STEP) + " slots, not " + slotToCard.length);
         this.env = env;
         this.slotToCard = slotToCard;
         this.cardToSlot = cardToSlot;
-
-        //Added
-        for(int i = 0 ; i < env.config.players ; i++){
-            tokenPlaced.put(i, new Vector<>());
-        }
+        this.packedCards = new PackedCards(env);
+        this.setFinder = new SetFinder(env, packedCards);
+        this.rules = new SetRules(env, packedCards);
+        this.setsPerSlot = new int[slotToCard.length];
+        this.generations = new AtomicIntegerArray(slotToCard.length);
+        this.cardMask = new long[(cardToSlot.length + 63) / 64];
+        this.animator = new TableAnimator(env);
+        this.snapshot = new TableSnapshot(0, slotToCard.clone(), new int[slotToCard.length]);
+        this.logger = new AsyncLogger(env.logger, LOG_CAPACITY);
+        this.dynamicSize = dynamicSize;
+        this.baseSize = dynamicSize ? slotToCard.length - GROWTH_STEP : slotToCard.length;
+        this.size = baseSize;
+
+        this.slotWords = (slotToCard.length + 63) / 64;
+        this.playerWords = (env.config.players + 63) / 64;
+        this.playerTokens = new AtomicLongArray(env.config.players * slotWords);
+        this.slotTokens = new AtomicLongArray(slotToCard.length * playerWords);
     }
 
     /**
-     * Constructor for actual usage.
+     * Constructor for actual usage. The dynamic size is turned on by running with -Dbguspl.set.dynamicTable=true.
      * @param env - the game environment objects.
      */
     public Table(Env env) {
 
-        this(env, new Integer[env.config.tableSize], new Integer[env.config.deckSize]);
+        this(env, emptyArray(env.config.tableSize), emptyArray(env.config.deckSize),
+                Boolean.getBoolean(DYNAMIC_SIZE_PROPERTY));
+    }
+
+    /**
+     * @return - a new array of the given length with all entries EMPTY.
+     */
+    private static int[] emptyArray(int length) {
+        int[] array = new int[length];
+        Arrays.fill(array, EMPTY);
+        return array;
     }
 
     /**
      * This method prints all possible legal sets of cards that are currently on the table.
      */
     public void hints() {
+        if (!logger.isLoggable(Level.INFO) || !hasSet())
+            return;
 
-        List<Integer> deck = Arrays.stream(slotToCard).filter(Objects::nonNull).collect(Collectors.toList());
-        env.util.findSets(deck, Integer.MAX_VALUE).forEach(set -> {
+        for (int[] set : sets()) {
             StringBuilder sb = new StringBuilder().append("Hint: Set found: ");
-            List<Integer> slots = Arrays.stream(set).mapToObj(card -> cardToSlot[card]).sorted().collect(Collectors.toList());
+            int[] slots = new int[set.length];
+            for (int i = 0; i < set.length; i++)
+                slots[i] = slotOf(set[i]);
+            Arrays.sort(slots);
             int[][] features = env.util.cardsToFeatures(set);
-            System.out.println(sb.append("slots: ").append(slots).append(" features: ").append(Arrays.deepToString(features)));
+            logger.log(Level.INFO, sb.append("slots: ").append(Arrays.toString(slots)).append(" features: ").append(Arrays.deepToString(features)).toString());
+        }
+    }
+
+    /**
+     * Returns all the legal sets among the cards on the table. The sets of a configuration of cards are computed
+     * once and kept in the cache, so configurations that come back after a reshuffle are not searched again.
+     *
+     * @return - an unmodifiable list of the legal sets on the table.
+     */
+    public List<int[]> sets() {
+        long[] mask;
+        int[] slots;
+        long stamp = lock.readLock();
+        try {
+            mask = cardMask.clone();
+            slots = slotToCard.clone();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return setCache.get(mask, () -> {
+            // the cards are only boxed on a miss
+            List<Integer> cards = Arrays.stream(slots).filter(card -> card != EMPTY).boxed().collect(Collectors.toList());
+            return setFinder.findSets(cards, Integer.MAX_VALUE);
         });
     }
 
@@ -80,13 +301,284 @@ public class Table {
      * @return - the number of cards on the table.
      */
     public int countCards() {
+        long stamp = lock.tryOptimisticRead();
+        int cards = countCardsUnlocked();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                cards = countCardsUnlocked();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return cards;
+    }
+
+    /**
+     * Counts the cards without taking the lock; the caller validates the read.
+     */
+    private int countCardsUnlocked() {
         int cards = 0;
-        for (Integer card : slotToCard)
-            if (card != null)
+        for (int card : slotToCard)
+            if (card != EMPTY)
                 ++cards;
         return cards;
     }
 
+    /**
+     * @return - the number of slots currently in use on the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return - true iff the table grows by GROWTH_STEP slots when it has no set.
+     */
+    public boolean isDynamic() {
+        return dynamicSize;
+    }
+
+    /**
+     * @return - the number of slots in use when the table did not grow.
+     */
+    public int baseSize() {
+        return baseSize;
+    }
+
+    /**
+     * Opens GROWTH_STEP more slots of the grid, so that more cards can be dealt.
+     *
+     * @return - true iff the table grew; false if the whole grid is already in use.
+     */
+    public boolean grow() {
+        long stamp = lock.writeLock();
+        try {
+            if (size + GROWTH_STEP > slotToCard.length)
+                return false;
+            size += GROWTH_STEP;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        logger.log(Level.FINE, "Table grew to {0,number,#} slots", size);
+        return true;
+    }
+
+    /**
+     * @return - true iff the table grew and the cards in its last GROWTH_STEP slots fit in the empty slots below them.
+     */
+    public boolean canShrink() {
+        long stamp = lock.readLock();
+        try {
+            return canShrinkLocked();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Closes the last GROWTH_STEP slots, moving their cards to the empty slots below them.
+     * The tokens on the closed slots should be removed first.
+     *
+     * @return - true iff the table shrank.
+     */
+    public boolean shrink() {
+        int[] moves = new int[GROWTH_STEP * 3];
+        int moved = 0;
+        long stamp = lock.writeLock();
+        try {
+            if (!canShrinkLocked())
+                return false;
+            int top = size - GROWTH_STEP;
+            int hole = 0;
+            for (int slot = top; slot < size; slot++) {
+                int card = slotToCard[slot];
+                if (card == EMPTY)
+                    continue;
+                while (slotToCard[hole] != EMPTY)
+                    hole++;
+                updateSets(slot, -1);
+                slotToCard[slot] = EMPTY;
+                generations.incrementAndGet(slot);
+                journal.record(TableJournal.CARD_REMOVED, slot, card);
+                placeCardLocked(card, hole);
+                moves[moved++] = card;
+                moves[moved++] = slot;
+                moves[moved++] = hole;
+            }
+            size = top;
+            publishSnapshot();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        int count = moved;
+        animator.reveal(() -> {
+            for (int i = 0; i < count; i += 3) {
+                env.ui.removeCard(moves[i + 1]);
+                env.ui.placeCard(moves[i], moves[i + 2]);
+            }
+        });
+        logger.log(Level.FINE, "Table shrank to {0,number,#} slots", size);
+        return true;
+    }
+
+    /**
+     * @pre - the caller holds the lock.
+     */
+    private boolean canShrinkLocked() {
+        if (size <= baseSize)
+            return false;
+        int top = size - GROWTH_STEP;
+        int holes = 0, cards = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (slot < top && slotToCard[slot] == EMPTY)
+                holes++;
+            else if (slot >= top && slotToCard[slot] != EMPTY)
+                cards++;
+        }
+        return holes >= cards;
+    }
+
+    /**
+     * Returns the card in a slot.
+     *
+     * @param slot - the slot to read.
+     * @return - the card id in the slot, or EMPTY if there is none.
+     */
+    public int cardAt(int slot) {
+        long stamp = lock.tryOptimisticRead();
+        int card = slotToCard[slot];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                card = slotToCard[slot];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return card;
+    }
+
+    /**
+     * Returns the slot a card is in.
+     *
+     * @param card - the card id to look for.
+     * @return - the slot of the card, or EMPTY if it is not on the table.
+     */
+    public int slotOf(int card) {
+        long stamp = lock.tryOptimisticRead();
+        int slot = cardToSlot[card];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                slot = cardToSlot[card];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the generation of a slot. A player reads it before placing a token, so that the dealer can later tell
+     * whether the card under the token is still the one the player saw.
+     *
+     * @param slot - the slot to read.
+     * @return - the number of times a card was placed in or removed from the slot.
+     */
+    public int generation(int slot) {
+        return generations.get(slot);
+    }
+
+    /**
+     * Checks in O(1) that a slot did not change since a generation was read, without reading its card.
+     *
+     * @param slot       - the slot to check.
+     * @param generation - the generation read from the slot earlier.
+     * @return - true iff no card was placed in or removed from the slot since.
+     */
+    public boolean isCurrent(int slot, int generation) {
+        return slot >= 0 && slot < slotToCard.length && generations.get(slot) == generation;
+    }
+
+    /**
+     * @param slot - the slot to check.
+     * @return - true iff there is a card in the slot.
+     */
+    public boolean hasCard(int slot) {
+        return cardAt(slot) != EMPTY;
+    }
+
+    /**
+     * Checks if the cards on the table contain a legal set.
+     *
+     * @return - true iff there is at least one legal set on the table.
+     */
+    public boolean hasSet() {
+        if (setFinder.pairwise())
+            return setsOnTable > 0;
+        return !sets().isEmpty();
+    }
+
+    /**
+     * @return - the number of legal sets among the cards on the table.
+     *
+     * @pre - setFinder.pairwise()
+     */
+    public int countSets() {
+        return setsOnTable;
+    }
+
+    /**
+     * Returns the number of legal sets on the table that a slot takes part in.
+     *
+     * @param slot - the slot to check.
+     * @return - the number of legal sets containing the card in the slot.
+     *
+     * @pre - setFinder.pairwise()
+     */
+    public int countSets(int slot) {
+        long stamp = lock.tryOptimisticRead();
+        int sets = setsPerSlot[slot];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                sets = setsPerSlot[slot];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Adds or removes the legal sets a card forms with the other cards on the table from the set index.
+     * Every other card on the table has a single completing card, so this takes O(table size).
+     *
+     * @param slot  - the slot of the card that was placed or is about to be removed.
+     * @param delta - 1 if the card was placed, -1 if it is being removed.
+     */
+    private void updateSets(int slot, int delta) {
+        if (!setFinder.pairwise())
+            return;
+        int card = slotToCard[slot];
+        int sets = 0;
+        for (int other = 0; other < slotToCard.length; other++) {
+            int otherCard = slotToCard[other];
+            if (other == slot || otherCard == EMPTY)
+                continue;
+            int third = setFinder.third(card, otherCard);
+            int thirdSlot = third >= 0 ? cardToSlot[third] : EMPTY;
+            if (thirdSlot > other && thirdSlot != slot) {
+                setsPerSlot[other] += delta;
+                setsPerSlot[thirdSlot] += delta;
+                sets++;
+            }
+        }
+        setsPerSlot[slot] += delta * sets;
+        setsOnTable += delta * sets;
+    }
+
     /**
      * Places a card on the table in a grid slot.
      * @param card - the card id to place in the slot.
@@ -95,15 +587,125 @@ public class Table {
      * @post - the card placed is on the table, in the assigned slot.
      */
     public void placeCard(int card, int slot) {
+        long stamp = lock.writeLock();
+        try {
+            placeCardLocked(card, slot);
+            publishSnapshot();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        animator.reveal(() -> env.ui.placeCard(card, slot));
+        // TODO implement
+        logger.log(Level.FINE, "Card : {0,number,#} placed in slot : {1,number,#}", card, slot);
+    }
+
+    /**
+     * Places a whole deal of cards on the table as a single move: one write, one ui update and one table delay.
+     * @param cards - the card ids to place.
+     * @param slots - the slot of every card, by the same order.
+     *
+     * @pre - cards.length == slots.length
+     * @post - every card is on the table, in its assigned slot.
+     */
+    public void placeCards(int[] cards, int[] slots) {
+        if (cards.length == 0)
+            return;
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < cards.length; i++)
+                placeCardLocked(cards[i], slots[i]);
+            publishSnapshot();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        animator.reveal(() -> {
+            for (int i = 0; i < cards.length; i++)
+                env.ui.placeCard(cards[i], slots[i]);
+        });
+        if (logger.isLoggable(Level.FINE))
+            logger.log(Level.FINE, "Cards : " + Arrays.toString(cards) + " placed in slots : " + Arrays.toString(slots));
+    }
+
+    /**
+     * Removes all the cards from the table as a single move: one write, one ui update and one table delay.
+     * @return - the ids of the cards that were on the table, by slot order.
+     *
+     * @post - countCards() == 0
+     */
+    public int[] clear() {
+        int[] cards;
+        int[] slots;
+        long stamp = lock.writeLock();
         try {
-            Thread.sleep(env.config.tableDelayMillis);
-        } catch (InterruptedException ignored) {}
+            int count = 0;
+            for (int card : slotToCard)
+                if (card != EMPTY)
+                    count++;
+            cards = new int[count];
+            slots = new int[count];
+            for (int slot = 0, i = 0; slot < slotToCard.length; slot++) {
+                if (slotToCard[slot] != EMPTY) {
+                    cards[i] = slotToCard[slot];
+                    slots[i++] = slot;
+                    journal.record(TableJournal.CARD_REMOVED, slot, slotToCard[slot]);
+                    cardToSlot[slotToCard[slot]] = EMPTY;
+                    slotToCard[slot] = EMPTY;
+                    generations.incrementAndGet(slot);
+                }
+            }
+            Arrays.fill(cardMask, 0);
+            Arrays.fill(setsPerSlot, 0);
+            setsOnTable = 0;
+            size = baseSize;
+            publishSnapshot();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (slots.length > 0) {
+            animator.reveal(() -> {
+                for (int slot : slots)
+                    env.ui.removeCard(slot);
+            });
+            if (logger.isLoggable(Level.FINE))
+                logger.log(Level.FINE, "Cards removed from the slots : " + Arrays.toString(slots));
+        }
+        return cards;
+    }
+
+    /**
+     * Returns the latest snapshot of the cards on the table. Readers that need a consistent view of several slots
+     * should work on a snapshot instead of reading the table slot by slot.
+     *
+     * @return - an immutable view of the table after the last change.
+     */
+    public TableSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publishes a snapshot of the current cards, with the next epoch.
+     *
+     * @pre - the caller holds the write lock.
+     */
+    private void publishSnapshot() {
+        int[] slotGenerations = new int[slotToCard.length];
+        for (int slot = 0; slot < slotGenerations.length; slot++)
+            slotGenerations[slot] = generations.get(slot);
+        snapshot = new TableSnapshot(snapshot.epoch() + 1, slotToCard.clone(), slotGenerations);
+    }
 
+    /**
+     * Places a card in a slot and updates the set index.
+     *
+     * @pre - the caller holds the write lock.
+     */
+    private void placeCardLocked(int card, int slot) {
         cardToSlot[card] = slot;
         slotToCard[slot] = card;
-        env.ui.placeCard(card,slot);
-        // TODO implement
-        System.out.println( "Card : " + card + " placed in slot : " + slot);
+        cardMask[card >> 6] |= 1L << card;
+        generations.incrementAndGet(slot);
+        updateSets(slot, 1);
+        journal.record(TableJournal.CARD_PLACED, slot, card);
     }
 
     /**
@@ -111,38 +713,114 @@ public class Table {
      * @param slot - the slot from which to remove the card.
      */
     public void removeCard(int slot) {
-        try {
-            Thread.sleep(env.config.tableDelayMillis);
-        } catch (InterruptedException ignored) {}
-
         // TODO implement
-        int card = slotToCard[slot];
-        slotToCard[slot] = -1 ;
-        if(card == -1){
-            return;
+        long stamp = lock.writeLock();
+        try {
+            int card = slotToCard[slot];
+            if(card == EMPTY){
+                return;
+            }
+            updateSets(slot, -1);
+            slotToCard[slot] = EMPTY;
+            cardToSlot[card] = EMPTY;
+            cardMask[card >> 6] &= ~(1L << card);
+            generations.incrementAndGet(slot);
+            journal.record(TableJournal.CARD_REMOVED, slot, card);
+            publishSnapshot();
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        cardToSlot[card] = -1 ;
 //        Integer card = slotToCard[slot];
 //        slotToCard[slot] = null ;
 //        if(card == null || card == -1){
 //            return;
 //        }
 //        cardToSlot[card] = null ;
-        env.ui.removeCard(slot);
-        System.out.println( "Card removed from the slot : " + slot);
+        animator.reveal(() -> env.ui.removeCard(slot));
+        logger.log(Level.FINE, "Card removed from the slot : {0,number,#}", slot);
+    }
+
+    /**
+     * Checks if a player has a token on a slot.
+     *
+     * @param player - the player to check.
+     * @param slot   - the slot to check.
+     * @return - true iff the player has a token on the slot.
+     */
+    public boolean hasToken(int player, int slot) {
+        return (playerTokens.get(player * slotWords + (slot >> 6)) & (1L << slot)) != 0;
+    }
+
+    /**
+     * Removes every token on a slot, using the slot to players index instead of scanning all the players.
+     *
+     * @param slot      - the slot to clear.
+     * @param onRemoved - called with the id of every player whose token was removed.
+     */
+    public void removeTokens(int slot, IntConsumer onRemoved) {
+        for (int word = 0; word < playerWords; word++) {
+            long players = slotTokens.getAndSet(slot * playerWords + word, 0);
+            while (players != 0) {
+                int player = word * 64 + Long.numberOfTrailingZeros(players);
+                players &= players - 1;
+                if (clearBit(playerTokens, player * slotWords + (slot >> 6), 1L << slot)) {
+                    journal.record(TableJournal.TOKEN_REMOVED, player, slot);
+                    animator.update(() -> env.ui.removeToken(player, slot));
+                    onRemoved.accept(player);
+                }
+            }
+        }
+    }
+
+    /**
+     * Atomically sets the bits of a mask in a word.
+     *
+     * @return - true iff any of the bits was not set before.
+     */
+    private static boolean setBit(AtomicLongArray words, int word, long mask) {
+        return (words.getAndAccumulate(word, mask, (bits, add) -> bits | add) & mask) != mask;
+    }
+
+    /**
+     * Atomically clears the bits of a mask in a word.
+     *
+     * @return - true iff any of the bits was set before.
+     */
+    private static boolean clearBit(AtomicLongArray words, int word, long mask) {
+        return (words.getAndAccumulate(word, ~mask, (bits, keep) -> bits & keep) & mask) != 0;
     }
 
     /**
      * Places a player token on a grid slot.
      * @param player - the player the token belongs to.
      * @param slot   - the slot on which to place the token.
+     * @return - true iff the token was placed, false if the slot is empty or already has the player's token.
      */
-    public void placeToken(int player, int slot) {
+    public boolean placeToken(int player, int slot) {
         // TODO implement
-        if(slotToCard[slot] != null) {
-            env.ui.placeToken(player, slot);
-            tokenPlaced.get(player).add(slot);
-        }
+        return placeToken(player, slot, generation(slot));
+    }
+
+    /**
+     * Places a player token on a grid slot, unless the card in it changed since the player read its generation. The
+     * generation is checked again once the token is on the slot, so a token that raced with the dealer replacing
+     * the card is taken back rather than left on the new card.
+     * @param player     - the player the token belongs to.
+     * @param slot       - the slot on which to place the token.
+     * @param generation - the generation of the slot when the player read its card.
+     * @return - true iff the token was placed.
+     */
+    public boolean placeToken(int player, int slot, int generation) {
+        if (!isCurrent(slot, generation) || !hasCard(slot)
+                || !setBit(playerTokens, player * slotWords + (slot >> 6), 1L << slot))
+            return false;
+        setBit(slotTokens, slot * playerWords + (player >> 6), 1L << player);
+        journal.record(TableJournal.TOKEN_PLACED, player, slot);
+        animator.update(() -> env.ui.placeToken(player, slot));
+        if (isCurrent(slot, generation))
+            return true;
+        removeToken(player, slot);
+        return false;
 
          /* tokenInSlot[slot]=player;
          if(tokenPlaced.get(player) == null){
@@ -175,9 +853,10 @@ public class Table {
      */
     public boolean removeToken(int player, int slot) {
         // TODO implement
-        if (tokenPlaced.get(player).contains(slot)) {
-            tokenPlaced.get(player).removeElement(slot);
-            env.ui.removeToken(player,slot);
+        if (slot >= 0 && clearBit(playerTokens, player * slotWords + (slot >> 6), 1L << slot)) {
+            clearBit(slotTokens, slot * playerWords + (player >> 6), 1L << player);
+            journal.record(TableJournal.TOKEN_REMOVED, player, slot);
+            animator.update(() -> env.ui.removeToken(player, slot));
             return true;
         }
         return false;
@@ -221,4 +900,88 @@ public class Table {
             }
         }
     }*/
+
+    /**
+     * Stress tests the slot and card maps: a writer thread places and removes cards (one by one, as a deal and by
+     * clearing the table) while reader threads check through cardAt and slotOf that slotToCard[x] == y iff
+     * cardToSlot[y] == x. A pair of reads counts as a violation only if no write was published between them.
+     * @param readers - the number of reader threads.
+     * @param millis  - how long the writer runs.
+     * @return - the number of violations seen, including any left once the writer stopped.
+     *
+     * @pre - the table is empty and no other thread changes it meanwhile.
+     * @post - countCards() == 0
+     */
+    public long stressTest(int readers, long millis) {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong violations = new AtomicLong();
+        Thread[] threads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            threads[r] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    long epoch = snapshot.epoch();
+                    int slot = random.nextInt(slotToCard.length);
+                    int card = cardAt(slot);
+                    int cardSlot = card == EMPTY ? EMPTY : slotOf(card);
+                    int other = random.nextInt(cardToSlot.length);
+                    int otherSlot = slotOf(other);
+                    int otherCard = otherSlot == EMPTY ? EMPTY : cardAt(otherSlot);
+                    boolean broken = (card != EMPTY && cardSlot != slot) || (otherSlot != EMPTY && otherCard != other);
+                    if (broken && snapshot.epoch() == epoch)
+                        violations.incrementAndGet();
+                }
+            }, "table-reader-" + r);
+            threads[r].start();
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            int operation = random.nextInt(100);
+            if (operation == 0) {
+                clear();
+            } else if (operation < 5) {
+                List<Integer> slots = new ArrayList<>();
+                for (int slot = 0; slot < slotToCard.length; slot++)
+                    if (cardAt(slot) == EMPTY)
+                        slots.add(slot);
+                List<Integer> cards = new ArrayList<>();
+                for (int card = 0; card < cardToSlot.length && cards.size() < slots.size(); card++)
+                    if (slotOf(card) == EMPTY)
+                        cards.add(card);
+                Collections.shuffle(cards);
+                int count = Math.min(slots.size(), cards.size());
+                placeCards(cards.subList(0, count).stream().mapToInt(Integer::intValue).toArray(),
+                        slots.subList(0, count).stream().mapToInt(Integer::intValue).toArray());
+            } else {
+                int slot = random.nextInt(slotToCard.length);
+                if (cardAt(slot) != EMPTY) {
+                    removeCard(slot);
+                } else {
+                    int card = random.nextInt(cardToSlot.length);
+                    if (slotOf(card) == EMPTY)
+                        placeCard(card, slot);
+                }
+            }
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        for (int slot = 0; slot < slotToCard.length; slot++)
+            if (slotToCard[slot] != EMPTY && cardToSlot[slotToCard[slot]] != slot)
+                violations.incrementAndGet();
+        for (int card = 0; card < cardToSlot.length; card++)
+            if (cardToSlot[card] != EMPTY && slotToCard[cardToSlot[card]] != card)
+                violations.incrementAndGet();
+        clear();
+        assert violations.get() == 0 : "slotToCard and cardToSlot disagree";
+        return violations.get();
+    }
 }
@@ -0,0 +1,80 @@
+package bguspl.set.ex;
+
+import bguspl.set.Env;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class staggers the table animations on its own thread.
+ * The table model changes immediately; every card update is scheduled tableDelayMillis after the previous one, so the
+ * cards are still revealed one by one while the dealer thread never sleeps for them. Token updates run right after
+ * the card updates scheduled before them, so a token never shows up on a card that is not revealed yet.
+ *
+ * @inv nextReveal is not decreasing
+ */
+public class TableAnimator {
+
+    /**
+     * The game environment object.
+     */
+    private final Env env;
+
+    /**
+     * The thread running the ui updates, in the order they were scheduled.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The time (in nanoseconds) at which the last scheduled ui update runs.
+     */
+    private long nextReveal = Long.MIN_VALUE;
+
+    /**
+     * The class constructor.
+     *
+     * @param env - the game environment object.
+     */
+    public TableAnimator(Env env) {
+        this.env = env;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "table-animator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules a ui update one table delay after the previously scheduled one (or after now, if it already ran).
+     *
+     * @param update - the ui update to run.
+     */
+    public synchronized void reveal(Runnable update) {
+        long delay = TimeUnit.MILLISECONDS.toNanos(env.config.tableDelayMillis);
+        long now = System.nanoTime();
+        nextReveal = (nextReveal == Long.MIN_VALUE || nextReveal - now < 0 ? now : nextReveal) + delay;
+        if (!scheduler.isShutdown())
+            scheduler.schedule(update, nextReveal - now, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Schedules a ui update to run right after the previously scheduled one (or now, if it already ran), without a
+     * delay of its own.
+     *
+     * @param update - the ui update to run.
+     */
+    public synchronized void update(Runnable update) {
+        long now = System.nanoTime();
+        long at = nextReveal == Long.MIN_VALUE || nextReveal - now < 0 ? now : nextReveal;
+        if (!scheduler.isShutdown())
+            scheduler.schedule(update, at - now, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the animations, dropping the ui updates that did not run yet.
+     */
+    public synchronized void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
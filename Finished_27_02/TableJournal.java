@@ -0,0 +1,129 @@
+package bguspl.set.ex;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records every change of the table in a fixed size ring buffer, each with its own sequence number.
+ * Writers claim the next sequence number, unpublish the entry, store the event in it and then publish the sequence
+ * number of the entry; readers check the sequence number of the entry before and after reading it.
+ * Readers (ui, ai players, statistics...) keep their own cursor and read the published events after it, so they never
+ * poll the table arrays and never slow down the writers. Recording an event does not allocate.
+ *
+ * @inv the event with sequence number s is stored in entry s % capacity
+ */
+public class TableJournal {
+
+    /**
+     * A card was placed on the table: a is the slot and b is the card.
+     */
+    public static final int CARD_PLACED = 0;
+
+    /**
+     * A card was removed from the table: a is the slot and b is the card.
+     */
+    public static final int CARD_REMOVED = 1;
+
+    /**
+     * A token was placed on the table: a is the player and b is the slot.
+     */
+    public static final int TOKEN_PLACED = 2;
+
+    /**
+     * A token was removed from the table: a is the player and b is the slot.
+     */
+    public static final int TOKEN_REMOVED = 3;
+
+    /**
+     * A consumer of journal events.
+     */
+    @FunctionalInterface
+    public interface EventConsumer {
+        void accept(long sequence, int type, int a, int b);
+    }
+
+    /**
+     * The events, encoded as type (8 bits), a (28 bits) and b (28 bits).
+     */
+    private final AtomicLongArray events;
+
+    /**
+     * The sequence number of the event published in each entry (-1 if none yet).
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * The index mask of the entries (the capacity is a power of 2).
+     */
+    private final int mask;
+
+    /**
+     * The sequence number the next event gets.
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * The class constructor.
+     *
+     * @param capacity - the number of events kept, rounded up to a power of 2.
+     */
+    public TableJournal(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        events = new AtomicLongArray(size);
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            published.set(i, -1);
+        mask = size - 1;
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param type - the type of the event.
+     * @param a    - the slot (for card events) or the player (for token events).
+     * @param b    - the card (for card events) or the slot (for token events).
+     * @return - the sequence number of the event.
+     */
+    public long record(int type, int a, int b) {
+        long sequence = next.getAndIncrement();
+        int index = (int) sequence & mask;
+        published.set(index, -1);
+        events.set(index, ((long) type << 56) | ((long) (a & 0xFFFFFFF) << 28) | (b & 0xFFFFFFF));
+        published.set(index, sequence);
+        return sequence;
+    }
+
+    /**
+     * Reads the published events from a cursor on, in sequence order.
+     * A reader that fell more than capacity events behind skips to the oldest event still kept; it can tell how many
+     * events it missed from the sequence numbers.
+     *
+     * @param cursor   - the sequence number of the first event to read.
+     * @param consumer - the consumer to pass every event to.
+     * @return - the cursor to continue reading from.
+     */
+    public long read(long cursor, EventConsumer consumer) {
+        while (true) {
+            long oldest = next.get() - events.length();
+            if (cursor < oldest)
+                cursor = oldest;
+            int index = (int) cursor & mask;
+            if (published.get(index) != cursor)
+                return cursor;
+            long event = events.get(index);
+            if (published.get(index) != cursor)
+                continue; // overwritten while reading, skip to the oldest event kept
+            int b = (int) (event & 0xFFFFFFF);
+            int a = (int) ((event >>> 28) & 0xFFFFFFF);
+            consumer.accept(cursor, (int) (event >>> 56), a, b);
+            cursor++;
+        }
+    }
+
+    /**
+     * @return - the sequence number the next event will get.
+     */
+    public long head() {
+        return next.get();
+    }
+}
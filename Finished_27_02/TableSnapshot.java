@@ -0,0 +1,92 @@
+package bguspl.set.ex;
+
+/**
+ * This class is an immutable view of the cards on the table at one point in time.
+ * The table publishes a new snapshot after every change the dealer makes, so any number of readers can look at a
+ * consistent table without locking it. The snapshot also keeps the generation of every slot, so claims can be
+ * validated against it.
+ *
+ * @inv epoch >= 0
+ */
+public final class TableSnapshot {
+
+    /**
+     * The number of card changes made to the table before this snapshot was taken.
+     */
+    private final long epoch;
+
+    /**
+     * Mapping between a slot and the card placed in it (Table.EMPTY if none).
+     */
+    private final int[] slotToCard;
+
+    /**
+     * The generation of every slot, see Table.generation.
+     */
+    private final int[] generations;
+
+    /**
+     * The class constructor.
+     *
+     * @param epoch       - the number of card changes made to the table so far.
+     * @param slotToCard  - a copy of the table's slot to card mapping, owned by the snapshot from now on.
+     * @param generations - the generation of every slot, owned by the snapshot from now on.
+     */
+    TableSnapshot(long epoch, int[] slotToCard, int[] generations) {
+        this.epoch = epoch;
+        this.slotToCard = slotToCard;
+        this.generations = generations;
+    }
+
+    /**
+     * @return - the number of card changes made to the table before this snapshot was taken.
+     */
+    public long epoch() {
+        return epoch;
+    }
+
+    /**
+     * @return - the number of slots on the table.
+     */
+    public int size() {
+        return slotToCard.length;
+    }
+
+    /**
+     * Returns the card that was in a slot.
+     *
+     * @param slot - the slot to read.
+     * @return - the card id in the slot, or Table.EMPTY if there was none.
+     */
+    public int cardAt(int slot) {
+        return slotToCard[slot];
+    }
+
+    /**
+     * Returns the generation a slot had.
+     *
+     * @param slot - the slot to read.
+     * @return - the number of times a card was placed in or removed from the slot before this snapshot was taken.
+     */
+    public int generation(int slot) {
+        return generations[slot];
+    }
+
+    /**
+     * @return - the number of cards on the table.
+     */
+    public int countCards() {
+        int cards = 0;
+        for (int card : slotToCard)
+            if (card != Table.EMPTY)
+                ++cards;
+        return cards;
+    }
+
+    /**
+     * @return - a copy of the slot to card mapping.
+     */
+    public int[] slotToCard() {
+        return slotToCard.clone();
+    }
+}